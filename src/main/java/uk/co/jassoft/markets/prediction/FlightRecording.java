@@ -0,0 +1,86 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Records a Java Flight Recorder file for a predictor run when predictor.jfr.file is set.
+ *
+ * The recording is driven through the DiagnosticCommand MBean, so it works on the Java 8 runtime as well
+ * as later JDKs. On Oracle Java 8 Flight Recorder is a licensed commercial feature; it is only unlocked
+ * when predictor.jfr.unlockCommercialFeatures is explicitly set. Failing to record never fails the run.
+ */
+@Component
+public class FlightRecording {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FlightRecording.class);
+
+    private static final String[] SIGNATURE = { String[].class.getName() };
+
+    @Value("${predictor.jfr.file:}")
+    private String file;
+
+    @Value("${predictor.jfr.settings:profile}")
+    private String settings;
+
+    @Value("${predictor.jfr.unlockCommercialFeatures:false}")
+    private boolean unlockCommercialFeatures;
+
+    private String recordingName;
+
+    public boolean isEnabled() {
+        return !file.isEmpty();
+    }
+
+    public void start(final String name) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        try {
+            if (unlockCommercialFeatures) {
+                LOG.info("Unlocking commercial features for Flight Recording");
+
+                invoke("vmUnlockCommercialFeatures");
+            }
+
+            invoke("jfrStart", "name=" + name, "settings=" + settings);
+            recordingName = name;
+
+            LOG.info("Started Flight Recording [{}]", name);
+        }
+        catch (Exception exception) {
+            LOG.warn("Unable to start Flight Recording [{}]", name, exception);
+        }
+    }
+
+    public void stop() {
+        if (recordingName == null) {
+            return;
+        }
+
+        try {
+            invoke("jfrStop", "name=" + recordingName, "filename=" + file);
+
+            LOG.info("Flight Recording [{}] written to [{}]", recordingName, file);
+        }
+        catch (Exception exception) {
+            LOG.warn("Unable to write Flight Recording [{}] to [{}]", recordingName, file, exception);
+        }
+        finally {
+            recordingName = null;
+        }
+    }
+
+    private static void invoke(final String command, final String... arguments) throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        server.invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"), command, new Object[] { arguments }, SIGNATURE);
+    }
+}
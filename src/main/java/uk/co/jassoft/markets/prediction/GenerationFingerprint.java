@@ -0,0 +1,51 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * The inputs last used to generate a prediction for a company, along with how often
+ * generation has run or been skipped for it.
+ */
+@Document
+public class GenerationFingerprint {
+
+    @Id
+    private String company;
+
+    private String fingerprint;
+
+    private Date updated;
+
+    private long generated;
+
+    private long skipped;
+
+    public String getCompany() {
+        return company;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public Date getUpdated() {
+        return updated;
+    }
+
+    public long getGenerated() {
+        return generated;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public double getSkipRate() {
+        long total = generated + skipped;
+
+        return total == 0 ? 0 : (double) skipped / total;
+    }
+}
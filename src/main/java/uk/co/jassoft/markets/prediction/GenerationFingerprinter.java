@@ -0,0 +1,98 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.company.quote.Quote;
+import uk.co.jassoft.markets.datamodel.company.sentiment.StorySentiment;
+import uk.co.jassoft.markets.datamodel.learningmodel.LearningModelRecord;
+import uk.co.jassoft.markets.datamodel.prediction.Prediction;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.StringJoiner;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Builds a cheap fingerprint of everything a prediction generation reads for a company, so that
+ * generation can be skipped when none of it has changed since the last run.
+ *
+ * The fingerprint covers the newest daily quote, the newest story sentiment, the size of the
+ * learning model and the number of validated predictions, plus the current day as the
+ * certainty window is relative to it. Open predictions are left out as generation itself adds to them.
+ */
+@Component
+public class GenerationFingerprinter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GenerationFingerprinter.class);
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Value("${predictor.fingerprint.enabled:true}")
+    private boolean enabled;
+
+    public String fingerprint(final String companyId) {
+        if (!enabled) {
+            return null;
+        }
+
+        final Quote lastQuote = mongoOperations.findOne(query(where("company").is(companyId).and("intraday").is(false))
+                .with(new Sort(Sort.Direction.DESC, "date")), Quote.class);
+
+        final StorySentiment lastStorySentiment = mongoOperations.findOne(query(where("company").is(companyId))
+                .with(new Sort(Sort.Direction.DESC, "id")), StorySentiment.class);
+
+        final StringJoiner fingerprint = new StringJoiner("|")
+                .add(new LocalDate().toString())
+                .add(String.valueOf(mongoOperations.count(query(where("company").is(companyId).and("intraday").is(false)), Quote.class)))
+                .add(lastQuote == null ? "-" : lastQuote.getId())
+                .add(lastQuote == null ? "-" : String.valueOf(lastQuote.getDate().getTime()))
+                .add(lastQuote == null ? "-" : lastQuote.getClose() + "/" + lastQuote.getBid() + "/" + lastQuote.getAsk())
+                .add(lastStorySentiment == null ? "-" : lastStorySentiment.getId())
+                .add(String.valueOf(mongoOperations.count(query(where("company").is(companyId)), LearningModelRecord.class)))
+                .add(String.valueOf(mongoOperations.count(query(where("company").is(companyId).and("correct").ne(null)), Prediction.class)));
+
+        return fingerprint.toString();
+    }
+
+    public boolean isUnchanged(final String companyId, final String fingerprint) {
+        if (fingerprint == null) {
+            return false;
+        }
+
+        final GenerationFingerprint previous = mongoOperations.findById(companyId, GenerationFingerprint.class);
+
+        return previous != null && fingerprint.equals(previous.getFingerprint());
+    }
+
+    public void recordGeneration(final String companyId, final String fingerprint) {
+        if (fingerprint == null) {
+            return;
+        }
+
+        mongoOperations.upsert(query(where("company").is(companyId)),
+                Update.update("fingerprint", fingerprint).set("updated", new Date()).inc("generated", 1),
+                GenerationFingerprint.class);
+    }
+
+    public void recordSkip(final String companyId) {
+        final GenerationFingerprint updated = mongoOperations.findAndModify(query(where("company").is(companyId)),
+                new Update().inc("skipped", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                GenerationFingerprint.class);
+
+        if (updated != null) {
+            LOG.info("Inputs unchanged for company [{}] - Skipping generation. Skipped [{}] Generated [{}] Skip rate [{}]",
+                    companyId, updated.getSkipped(), updated.getGenerated(), String.format("%.2f", updated.getSkipRate()));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A pending request to generate a prediction for a company. Repeated requests for the same
+ * company are coalesced into one document until it is generated.
+ */
+@Document
+public class GenerationRequest {
+
+    @Id
+    private String company;
+
+    private Date firstRequested;
+
+    private Date lastRequested;
+
+    private long requests;
+
+    private int priority;
+
+    public String getCompany() {
+        return company;
+    }
+
+    public Date getFirstRequested() {
+        return firstRequested;
+    }
+
+    public Date getLastRequested() {
+        return lastRequested;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+}
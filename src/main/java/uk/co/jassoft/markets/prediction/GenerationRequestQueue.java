@@ -0,0 +1,180 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.company.quote.Quote;
+import uk.co.jassoft.markets.repository.QuoteRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Intake in front of the {@link PredictionGenerator}.
+ *
+ * Requests are held in Mongo so that, when a debounce window is configured, a burst of requests for one
+ * company, even from separate predictor processes, coalesces into a single generation once no new
+ * request has arrived for the window. Due requests are generated in priority order, companies whose
+ * exchange is trading or about to open first. A request whose generation did not run, because another
+ * instance held the company's lease or the generation failed, is re-submitted for the next run.
+ */
+@Component
+public class GenerationRequestQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GenerationRequestQueue.class);
+
+    static final int PRIORITY_OPEN = 0;
+    static final int PRIORITY_OPENING = 1;
+    static final int PRIORITY_CLOSED = 2;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private QuoteRepository quoteRepository;
+
+    @Autowired
+    private PredictionGenerator predictionGenerator;
+
+    /** How long a request must be quiet before it is generated, 0 to generate straight away */
+    @Value("${predictor.generation.debounceMillis:0}")
+    private long debounceMillis;
+
+    /** How recent an intraday quote must be for the exchange to count as open */
+    @Value("${predictor.generation.openWindowMinutes:30}")
+    private long openWindowMinutes;
+
+    /** How far ahead to look for an exchange opening, based on when it was trading the day before */
+    @Value("${predictor.generation.openingLookaheadMinutes:60}")
+    private long openingLookaheadMinutes;
+
+    private final AtomicLong requestsGenerated = new AtomicLong();
+    private final AtomicLong generations = new AtomicLong();
+
+    /**
+     * Submits the requests, waits out the debounce window if there is one and then generates every due request.
+     * Requests that have been re-submitted since are left for the process that submitted them last.
+     */
+    public void process(final List<String> companyIds) throws InterruptedException {
+        companyIds.forEach(this::submit);
+
+        if (debounceMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(debounceMillis);
+        }
+
+        drain();
+    }
+
+    public void submit(final String companyId) {
+        mongoOperations.upsert(query(where("company").is(companyId)),
+                Update.update("lastRequested", new Date())
+                        .setOnInsert("firstRequested", new Date())
+                        .set("priority", priorityOf(companyId))
+                        .inc("requests", 1),
+                GenerationRequest.class);
+    }
+
+    public void drain() {
+        final Query due = query(where("lastRequested").lte(new Date(System.currentTimeMillis() - debounceMillis)))
+                .with(new Sort(Sort.Direction.ASC, "priority", "firstRequested"));
+
+        for (GenerationRequest request : mongoOperations.find(due, GenerationRequest.class)) {
+            // Only generate if the request has not been re-submitted or claimed by another process since
+            final GenerationRequest claimed = mongoOperations.findAndRemove(query(where("company").is(request.getCompany())
+                    .and("lastRequested").is(request.getLastRequested())), GenerationRequest.class);
+
+            if (claimed == null) {
+                continue;
+            }
+
+            LOG.info("Generating for company [{}] with priority [{}] coalescing [{}] requests", claimed.getCompany(), claimed.getPriority(), claimed.getRequests());
+
+            boolean generated;
+
+            try {
+                generated = predictionGenerator.generatePrediction(claimed.getCompany());
+            }
+            catch (final RuntimeException exception) {
+                LOG.warn("Generation failed for company [{}] - Re-submitting", claimed.getCompany());
+                generated = false;
+            }
+
+            if (!generated) {
+                resubmit(claimed);
+                continue;
+            }
+
+            requestsGenerated.addAndGet(claimed.getRequests());
+            generations.incrementAndGet();
+        }
+
+        LOG.info("Generation queue depth [{}] - [{}] generations for [{}] requests, coalesce rate [{}]",
+                getDepth(), generations.get(), requestsGenerated.get(), String.format("%.2f", getCoalesceRate()));
+    }
+
+    /**
+     * Puts a claimed request back, merging it into any request submitted since it was claimed. Its original
+     * request times are kept so it is due straight away on the next drain.
+     */
+    private void resubmit(final GenerationRequest request) {
+        mongoOperations.upsert(query(where("company").is(request.getCompany())),
+                new Update()
+                        .setOnInsert("firstRequested", request.getFirstRequested())
+                        .setOnInsert("lastRequested", request.getLastRequested())
+                        .setOnInsert("priority", request.getPriority())
+                        .inc("requests", request.getRequests()),
+                GenerationRequest.class);
+    }
+
+    public long getDepth() {
+        return mongoOperations.count(new Query(), GenerationRequest.class);
+    }
+
+    public double getCoalesceRate() {
+        final long requests = requestsGenerated.get();
+
+        return requests == 0 ? 0 : 1 - (double) generations.get() / requests;
+    }
+
+    /**
+     * Exchange trading hours are not modelled, so they are inferred from intraday quotes: an exchange with a
+     * recent intraday quote is open, and one that was trading at about this time yesterday is about to open.
+     */
+    int priorityOf(final String companyId) {
+        final long now = System.currentTimeMillis();
+
+        final Date latestOpen = latestIntradayQuoteBefore(companyId, new Date(now));
+
+        if (latestOpen != null && latestOpen.getTime() > now - TimeUnit.MINUTES.toMillis(openWindowMinutes)) {
+            return PRIORITY_OPEN;
+        }
+
+        final long aDayAgo = now - TimeUnit.DAYS.toMillis(1);
+
+        final Date latestYesterday = latestIntradayQuoteBefore(companyId, new Date(aDayAgo + TimeUnit.MINUTES.toMillis(openingLookaheadMinutes)));
+
+        if (latestYesterday != null && latestYesterday.getTime() > aDayAgo) {
+            return PRIORITY_OPENING;
+        }
+
+        return PRIORITY_CLOSED;
+    }
+
+    private Date latestIntradayQuoteBefore(final String companyId, final Date date) {
+        final List<Quote> quotes = quoteRepository.findByCompanyAndIntradayAndDateLessThan(companyId, true, date, new PageRequest(0, 1, new Sort(Sort.Direction.DESC, "date")));
+
+        return quotes.isEmpty() ? null : quotes.get(0).getDate();
+    }
+}
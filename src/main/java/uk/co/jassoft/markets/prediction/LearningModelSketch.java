@@ -0,0 +1,116 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.learningmodel.LearningModelRecord;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size summary of the learning model records for one company, quote direction and sentiment direction.
+ *
+ * Records are placed in bands of lastSentimentDifferenceFromAverage, bandWidth wide between -bandLimit and
+ * bandLimit with an open band either side, and each band keeps the count, sum and max of resultingQuoteChange.
+ *
+ * Error bound: statistics below a threshold are made from the whole bands below it, so they are exactly the
+ * statistics below the threshold rounded down to the nearest band edge. Records between that edge and the
+ * threshold are left out, at most one bandWidth of sentiment difference within -bandLimit to bandLimit and
+ * the whole open band outside it. No record at or above the threshold is ever included, and the result is
+ * exact whenever the threshold falls on a band edge.
+ *
+ * The bound is over the records the sketch has read. Records are only ever added to it, so an in-place edit
+ * to a record it has already read is not reflected until the sketch is rebuilt.
+ */
+@Document
+public class LearningModelSketch {
+
+    @Id
+    private String id;
+
+    private double bandWidth;
+
+    private double bandLimit;
+
+    private String lastRecord;
+
+    private long[] counts;
+
+    private double[] sums;
+
+    private double[] maxes;
+
+    public LearningModelSketch() {
+    }
+
+    public LearningModelSketch(final String id, final double bandWidth, final double bandLimit) {
+        this.id = id;
+        this.bandWidth = bandWidth;
+        this.bandLimit = bandLimit;
+
+        int bands = edges() + 1;
+
+        this.counts = new long[bands];
+        this.sums = new double[bands];
+        this.maxes = new double[bands];
+
+        Arrays.fill(maxes, Double.NEGATIVE_INFINITY);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getLastRecord() {
+        return lastRecord;
+    }
+
+    public boolean hasBands(final double bandWidth, final double bandLimit) {
+        return this.bandWidth == bandWidth && this.bandLimit == bandLimit;
+    }
+
+    public long getCount() {
+        return Arrays.stream(counts).sum();
+    }
+
+    public void add(final LearningModelRecord record) {
+        int band = bandOf(record.getLastSentimentDifferenceFromAverage());
+
+        counts[band]++;
+        sums[band] += record.getResultingQuoteChange();
+        maxes[band] = Math.max(maxes[band], record.getResultingQuoteChange());
+
+        lastRecord = record.getId();
+    }
+
+    /**
+     * @return the statistics of records whose sentiment difference is below the threshold, within the bound above
+     */
+    public LearningModelStatistics statisticsBelow(final double threshold) {
+        long count = 0;
+        double sum = 0;
+        double max = Double.NEGATIVE_INFINITY;
+
+        for (int band = 0; band < bandOf(threshold); band++) {
+            count += counts[band];
+            sum += sums[band];
+            max = Math.max(max, maxes[band]);
+        }
+
+        return new LearningModelStatistics(count, sum, max);
+    }
+
+    private int edges() {
+        return (int) Math.round(2 * bandLimit / bandWidth) + 1;
+    }
+
+    /**
+     * @return the number of band edges at or below the value, which is also the index of its band
+     */
+    private int bandOf(final double value) {
+        if (value < -bandLimit) {
+            return 0;
+        }
+
+        return (int) Math.min(edges(), Math.floor((value + bandLimit) / bandWidth) + 1);
+    }
+}
@@ -0,0 +1,36 @@
+package uk.co.jassoft.markets.prediction;
+
+import java.util.OptionalDouble;
+
+/**
+ * Count, sum and max of the resulting quote change across the learning model records
+ * that fall below a sentiment difference threshold.
+ */
+public class LearningModelStatistics {
+
+    private final long count;
+    private final double sum;
+    private final double max;
+
+    public LearningModelStatistics(long count, double sum, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public static LearningModelStatistics empty() {
+        return new LearningModelStatistics(0, 0, Double.NEGATIVE_INFINITY);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public OptionalDouble getAverage() {
+        return count == 0 ? OptionalDouble.empty() : OptionalDouble.of(sum / count);
+    }
+
+    public OptionalDouble getMax() {
+        return count == 0 ? OptionalDouble.empty() : OptionalDouble.of(max);
+    }
+}
@@ -0,0 +1,172 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.Direction;
+import uk.co.jassoft.markets.datamodel.learningmodel.LearningModelRecord;
+import uk.co.jassoft.markets.repository.LearningModelRepository;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import java.util.DoubleSummaryStatistics;
+import java.util.List;
+
+import static uk.co.jassoft.markets.prediction.PredictionGenerator.isWithinDifferenceFromAverage;
+
+/**
+ * Calculates the learning model statistics used by the {@link PredictionGenerator}.
+ *
+ * In {@link Mode#Java} every matching record is loaded and reduced in memory. In {@link Mode#Aggregation}
+ * the same match and reduction run as a Mongo aggregation pipeline, so only the totals leave the database.
+ * In {@link Mode#Sketch} the answer comes from a {@link LearningModelSketch} kept per company and direction
+ * pair, which only has to read the records added since it was last used; see it for the error bound.
+ */
+@Component
+public class LearningModelStatisticsCalculator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LearningModelStatisticsCalculator.class);
+
+    public enum Mode {
+        Java,
+        Aggregation,
+        Sketch
+    }
+
+    @Autowired
+    private LearningModelRepository learningModelRepository;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Value("${predictor.learningModel.statistics:Java}")
+    private Mode mode;
+
+    @Value("${predictor.learningModel.sketch.bandWidth:0.5}")
+    private double sketchBandWidth;
+
+    @Value("${predictor.learningModel.sketch.bandLimit:20}")
+    private double sketchBandLimit;
+
+    public LearningModelStatistics calculate(final String company, final Direction previousQuoteDirection, final Direction previousSentimentDirection, final Double sentimentDifference) {
+        switch (mode) {
+            case Aggregation:
+                return calculateWithAggregation(company, previousQuoteDirection, previousSentimentDirection, sentimentDifference);
+
+            case Sketch:
+                return calculateWithSketch(company, previousQuoteDirection, previousSentimentDirection, sentimentDifference);
+
+            default:
+                return calculateInMemory(company, previousQuoteDirection, previousSentimentDirection, sentimentDifference);
+        }
+    }
+
+    LearningModelStatistics calculateInMemory(final String company, final Direction previousQuoteDirection, final Direction previousSentimentDirection, final Double sentimentDifference) {
+        List<LearningModelRecord> learningModelRecords = learningModelRepository.findByCompanyAndPreviousQuoteDirectionAndPreviousSentimentDirection(company,
+                previousQuoteDirection,
+                previousSentimentDirection);
+
+        // TODO: Should the filter abs the value first? to take into account negatives before doing < filter
+        DoubleSummaryStatistics statistics = learningModelRecords
+                .stream()
+                .filter(isWithinDifferenceFromAverage(sentimentDifference))
+                .mapToDouble(value -> value.getResultingQuoteChange())
+                .summaryStatistics();
+
+        return new LearningModelStatistics(statistics.getCount(), statistics.getSum(), statistics.getMax());
+    }
+
+    LearningModelStatistics calculateWithAggregation(final String company, final Direction previousQuoteDirection, final Direction previousSentimentDirection, final Double sentimentDifference) {
+        TypedAggregation<LearningModelRecord> aggregation = Aggregation.newAggregation(LearningModelRecord.class,
+                Aggregation.match(Criteria.where("company").is(company)
+                        .and("previousQuoteDirection").is(previousQuoteDirection.name())
+                        .and("previousSentimentDirection").is(previousSentimentDirection.name())
+                        .and("lastSentimentDifferenceFromAverage").lt(sentimentDifference)),
+                Aggregation.group()
+                        .count().as("count")
+                        .sum("resultingQuoteChange").as("sum")
+                        .max("resultingQuoteChange").as("max"));
+
+        Totals totals = mongoOperations.aggregate(aggregation, Totals.class).getUniqueMappedResult();
+
+        if (totals == null) {
+            return LearningModelStatistics.empty();
+        }
+
+        return new LearningModelStatistics(totals.count, totals.sum, totals.max);
+    }
+
+    /**
+     * Brings the sketch up to date at read time by folding in only the records above its id watermark, and
+     * saves it only when it changed. The bucket is counted on every call, so a record that landed behind the
+     * watermark rebuilds the sketch; an in-place edit to an existing record leaves the count unchanged and is
+     * not detected, so change the band settings to rebuild.
+     */
+    LearningModelStatistics calculateWithSketch(final String company, final Direction previousQuoteDirection, final Direction previousSentimentDirection, final Double sentimentDifference) {
+        final Criteria bucket = Criteria.where("company").is(company)
+                .and("previousQuoteDirection").is(previousQuoteDirection.name())
+                .and("previousSentimentDirection").is(previousSentimentDirection.name());
+
+        final String sketchId = company + "|" + previousQuoteDirection + "|" + previousSentimentDirection;
+
+        LearningModelSketch sketch = mongoOperations.findById(sketchId, LearningModelSketch.class);
+
+        if (sketch == null || !sketch.hasBands(sketchBandWidth, sketchBandLimit)) {
+            sketch = new LearningModelSketch(sketchId, sketchBandWidth, sketchBandLimit);
+        }
+
+        boolean changed = addRecordsSince(sketch, bucket) > 0;
+
+        // Ids are only roughly ordered across writers, so start again if a record was added behind the watermark
+        if (sketch.getCount() != mongoOperations.count(new Query(bucket), LearningModelRecord.class)) {
+            LOG.info("Learning model sketch [{}] is out of step with its records - Rebuilding", sketchId);
+
+            sketch = new LearningModelSketch(sketchId, sketchBandWidth, sketchBandLimit);
+
+            addRecordsSince(sketch, bucket);
+            changed = true;
+        }
+
+        if (changed) {
+            mongoOperations.save(sketch);
+        }
+
+        return sketch.statisticsBelow(sentimentDifference);
+    }
+
+    /**
+     * @return the number of records folded into the sketch
+     */
+    private long addRecordsSince(final LearningModelSketch sketch, final Criteria bucket) {
+        final Query newRecords = new Query(bucket).with(new Sort(Sort.Direction.ASC, "id"));
+
+        if (sketch.getLastRecord() != null) {
+            newRecords.addCriteria(Criteria.where("id").gt(ObjectId.isValid(sketch.getLastRecord()) ? new ObjectId(sketch.getLastRecord()) : sketch.getLastRecord()));
+        }
+
+        long added = 0;
+
+        try (CloseableIterator<LearningModelRecord> records = mongoOperations.stream(newRecords, LearningModelRecord.class)) {
+            while (records.hasNext()) {
+                sketch.add(records.next());
+                added++;
+            }
+        }
+
+        return added;
+    }
+
+    static class Totals {
+        private long count;
+        private double sum;
+        private double max;
+    }
+}
@@ -0,0 +1,38 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Ownership of a unit of work by a single predictor instance until it expires.
+ */
+@Document
+public class Lease {
+
+    @Id
+    private String name;
+
+    private String owner;
+
+    private Date heartbeat;
+
+    private Date expires;
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Date getHeartbeat() {
+        return heartbeat;
+    }
+
+    public Date getExpires() {
+        return expires;
+    }
+}
@@ -0,0 +1,101 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Mongo backed leases which stop predictor instances from working on the same thing at once.
+ *
+ * A lease is held until it is released or its owner stops sending heartbeats, after which any
+ * other instance may take it over.
+ */
+@Component
+public class LeaseManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseManager.class);
+
+    private final String owner;
+
+    private final Map<String, Long> lastHeartbeats = new ConcurrentHashMap<>();
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Value("${predictor.lease.durationSeconds:120}")
+    private long leaseDurationSeconds;
+
+    public LeaseManager() {
+        this(ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID());
+    }
+
+    LeaseManager(final String owner) {
+        this.owner = owner;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean acquire(final String name) {
+        final Date now = new Date();
+
+        try {
+            Lease lease = mongoOperations.findAndModify(query(where("name").is(name).orOperator(where("owner").is(owner), where("expires").lt(now))),
+                    Update.update("owner", owner).set("heartbeat", now).set("expires", new Date(now.getTime() + leaseDurationSeconds * 1000)),
+                    FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    Lease.class);
+
+            if (lease != null && owner.equals(lease.getOwner())) {
+                lastHeartbeats.put(name, now.getTime());
+                return true;
+            }
+        }
+        catch (DuplicateKeyException exception) {
+            // Held by another instance
+        }
+
+        return false;
+    }
+
+    /**
+     * Extends a held lease once a third of its duration has passed since the last heartbeat.
+     *
+     * @return false if the lease has been lost to another instance
+     */
+    public boolean heartbeat(final String name) {
+        final Long lastHeartbeat = lastHeartbeats.get(name);
+
+        if (lastHeartbeat != null && System.currentTimeMillis() - lastHeartbeat < leaseDurationSeconds * 1000 / 3) {
+            return true;
+        }
+
+        if (!acquire(name)) {
+            LOG.warn("Lease [{}] has been taken over by another instance", name);
+            lastHeartbeats.remove(name);
+            return false;
+        }
+
+        return true;
+    }
+
+    public void release(final String name) {
+        lastHeartbeats.remove(name);
+        mongoOperations.remove(query(where("name").is(name).and("owner").is(owner)), Lease.class);
+    }
+}
@@ -17,6 +17,8 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
@@ -26,8 +28,13 @@ import org.springframework.stereotype.Component;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.OptionalDouble;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by jonshaw on 08/12/2015.
@@ -47,7 +54,7 @@ public class PredictionGenerator {
     private QuoteRepository quoteRepository;
 
     @Autowired
-    private LearningModelRepository learningModelRepository;
+    private LearningModelStatisticsCalculator learningModelStatisticsCalculator;
 
     @Autowired
     private PredictionRepository predictionRepository;
@@ -55,23 +62,98 @@ public class PredictionGenerator {
     @Autowired
     private JmsTemplate jmsTemplate;
 
+    @Autowired
+    private GenerationFingerprinter generationFingerprinter;
+
+    @Autowired
+    private LeaseManager leaseManager;
+
+    @Autowired
+    @Qualifier("predictorIoExecutor")
+    private ExecutorService ioExecutor;
+
+    @Value("${predictor.generation.timeoutSeconds:60}")
+    private long generationTimeoutSeconds;
+
     private void predictionGenerated(final String message)
     {
         jmsTemplate.convertAndSend(Topic.PredictionGenerated.toString(), message);
     }
 
-    public void generatePrediction(String companyId) {
+    /**
+     * @return false if another instance was already generating for the company, so this call did not run
+     */
+    public boolean generatePrediction(String companyId) {
 
         try {
             Company company = companyRepository.findOne(companyId);
 
             LOG.info("Prediction Generator running for company [{}] [{}]", company.getId(), company.getName());
 
-            // get quote price change
-            // TODO: use intraday where possible to determine how long prediction should last
-            final List<Quote> quotes = quoteRepository.findByCompanyAndIntraday(company.getId(), false, new PageRequest(0, 7, new Sort(Sort.Direction.ASC, "date")));
+            final String leaseName = "generation-" + company.getId();
+
+            if (!leaseManager.acquire(leaseName)) {
+                LOG.info("Prediction already being generated for company [{}] by another instance - Skipping", company.getName());
+                return false;
+            }
+
+            final StageProfile profile = new StageProfile(company.getId());
+
+            try {
+                final long fingerprintStart = System.nanoTime();
+                final String fingerprint = generationFingerprinter.fingerprint(company.getId());
+                profile.record("fingerprint", fingerprintStart, 1);
+
+                if (generationFingerprinter.isUnchanged(company.getId(), fingerprint)) {
+                    generationFingerprinter.recordSkip(company.getId());
+                    return true;
+                }
+
+                generatePrediction(company, profile);
+
+                generationFingerprinter.recordGeneration(company.getId(), fingerprint);
+            }
+            finally {
+                leaseManager.release(leaseName);
+
+                LOG.debug("Generation stages for company [{}] {}", profile.getSubject(), profile);
+            }
+        }
+        catch (QuotePriceCalculationException | SentimentException exception) {
+            LOG.info(exception.getLocalizedMessage());
+        }
+        catch (final Exception exception)
+        {
+            LOG.error(exception.getLocalizedMessage(), exception);
+
+            throw new RuntimeException(exception);
+        }
+
+        return true;
+    }
+
+    private void generatePrediction(final Company company, final StageProfile profile) throws Exception {
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(generationTimeoutSeconds);
+
+        // The reads below are independent of each other, so issue them together and join on the deadline
+        // TODO: use intraday where possible to determine how long prediction should last
+        final CompletableFuture<List<Quote>> quotesFuture = CompletableFuture.supplyAsync(() -> profile.time("loadQuotes", () ->
+                quoteRepository.findByCompanyAndIntraday(company.getId(), false, new PageRequest(0, 7, new Sort(Sort.Direction.ASC, "date")))), ioExecutor);
+
+        final CompletableFuture<List<StorySentiment>> storySentimentsFuture = CompletableFuture.supplyAsync(() -> profile.time("loadSentiments", () ->
+                storySentimentRepository.findByCompany(company.getId())), ioExecutor);
+
+        final CompletableFuture<Page<Prediction>> predictionsForCompanyFuture = CompletableFuture.supplyAsync(() -> profile.time("loadPredictionHistory", () ->
+                predictionRepository.findByCompany(company.getId(), new PageRequest(0, 100))), ioExecutor);
+
+        final CompletableFuture<List<Prediction>> openPredictionsForCompanyFuture = CompletableFuture.supplyAsync(() -> profile.time("loadOpenPredictions", () ->
+                predictionRepository.findByCompanyAndCorrectIsNull(company.getId())), ioExecutor);
+
+        try {
+            final List<Quote> quotes = await(quotesFuture, deadline);
 
-            final List<StorySentiment> storySentiments = storySentimentRepository.findByCompany(company.getId());
+            final List<StorySentiment> storySentiments = await(storySentimentsFuture, deadline);
 
             if (quotes.isEmpty()) {
                 return;
@@ -79,31 +161,32 @@ public class PredictionGenerator {
 
             final Quote lastQuote = quotes.get(quotes.size() - 1);
 
-            List<LearningModelRecord> learningModelRecords = learningModelRepository.findByCompanyAndPreviousQuoteDirectionAndPreviousSentimentDirection(company.getId(),
-                    QuoteUtils.getPreviousPriceDirection(quotes),
-                    SentimentUtil.getPreviousSentimentDirection(storySentiments, lastQuote.getDate()));
+            long stageStart = System.nanoTime();
 
             Double sentimentDifference = SentimentUtil.getLastSentimentDifferenceFromAverage(storySentiments, lastQuote.getDate());
 
+            Direction previousQuoteDirection = QuoteUtils.getPreviousPriceDirection(quotes);
+
+            Direction previousSentimentDirection = SentimentUtil.getPreviousSentimentDirection(storySentiments, lastQuote.getDate());
+
+            profile.record("compute", stageStart, storySentiments.size());
+
+            stageStart = System.nanoTime();
+
+            LearningModelStatistics learningModelStatistics = learningModelStatisticsCalculator.calculate(company.getId(),
+                    previousQuoteDirection,
+                    previousSentimentDirection,
+                    sentimentDifference);
+
+            profile.record("loadModel", stageStart, learningModelStatistics.getCount());
+
             //Average quote change below difference
-            // TODO: Should the filter abs the value first? to take into account negatives before doing < filter
-            OptionalDouble averageQuoteChangeBelowValue = learningModelRecords
-                    .stream()
-                    .filter(isWithinDifferenceFromAverage(sentimentDifference))
-                    .mapToDouble(value -> value.getResultingQuoteChange())
-                    .average();
-            OptionalDouble maxQuoteChangeBelowValue = learningModelRecords
-                    .stream()
-                    .filter(isWithinDifferenceFromAverage(sentimentDifference))
-                    .mapToDouble(value -> value.getResultingQuoteChange())
-                    .max();
+            OptionalDouble averageQuoteChangeBelowValue = learningModelStatistics.getAverage();
+            OptionalDouble maxQuoteChangeBelowValue = learningModelStatistics.getMax();
 
             //Average quote change above difference
-            OptionalDouble averageQuoteChangeAboveValue = learningModelRecords
-                    .stream()
-                    .filter(isWithinDifferenceFromAverage(sentimentDifference))
-                    .mapToDouble(value -> value.getResultingQuoteChange())
-                    .average();
+            // Uses the same below difference statistics as the average above
+            OptionalDouble averageQuoteChangeAboveValue = learningModelStatistics.getAverage();
 
             List<Double> valuesToAverage = new ArrayList<>();
 
@@ -145,7 +228,9 @@ public class PredictionGenerator {
                 endDate = endDate.plusDays(1);
             }
 
-            Page<Prediction> predictionsForCompany = predictionRepository.findByCompany(company.getId(), new PageRequest(0, 100));
+            Page<Prediction> predictionsForCompany = await(predictionsForCompanyFuture, deadline);
+
+            stageStart = System.nanoTime();
 
             List<Prediction> matchingPredictions = predictionsForCompany.getContent().stream().filter(isValidated()).filter(matchesDirection(direction)).filter(isWithinLastDays(30)).collect(Collectors.toList());
 
@@ -163,6 +248,8 @@ public class PredictionGenerator {
 
             double potentialEarningPerShare = Math.abs(lastQuote.getBid() - (lastQuote.getAsk() - predictedQuoteChange));
 
+            profile.record("certainty", stageStart, matchingPredictions.size());
+
             LOG.info("Correct predictions [{}] /  Matching predictions [{}]. Resulting in certainty of [{}]", matchingPredictions.size(), correctPredictions.size(), certainty);
 
             Prediction prediction = PredictionBuilder.aPrediction()
@@ -178,19 +265,23 @@ public class PredictionGenerator {
                     .withPotentialEarningPerShare(potentialEarningPerShare)
                     .build();
 
-            List<Prediction> openPredictionsForCompany = predictionRepository.findByCompanyAndCorrectIsNull(company.getId());
+            List<Prediction> openPredictionsForCompany = await(openPredictionsForCompanyFuture, deadline);
+
+            stageStart = System.nanoTime();
 
             if(!openPredictionsForCompany.isEmpty()) {
                 for(Prediction openPrediction : openPredictionsForCompany) {
                     if(openPrediction.getDirection().equals(prediction.getDirection())
                             && openPrediction.getPredictedChange().equals(prediction.getPredictedChange())) {
                         if(openPrediction.getCertainty().equals(prediction.getCertainty())) {
+                            profile.record("dedup", stageStart, openPredictionsForCompany.size());
                             LOG.info("Duplicate Prediction generated for company [{}] - Ignoring prediction", company.getName());
                             return;
                         }
                         else {
+                            profile.record("dedup", stageStart, openPredictionsForCompany.size());
                             openPrediction.setCertainty(prediction.getCertainty());
-                            predictionRepository.save(openPrediction);
+                            profile.time("save", () -> predictionRepository.save(openPrediction));
                             LOG.info("Duplicate Prediction generated for company [{}] with different Certainty - Updating prediction", company.getName());
                             return;
                         }
@@ -198,19 +289,31 @@ public class PredictionGenerator {
                 }
             }
 
+            profile.record("dedup", stageStart, openPredictionsForCompany.size());
+
             LOG.info("Prediction Generated for company [{}] [{}]", company.getId(), company.getName());
-            predictionRepository.save(prediction);
-            predictionGenerated(prediction.getId());
+            profile.time("save", () -> predictionRepository.save(prediction));
 
+            stageStart = System.nanoTime();
+            predictionGenerated(prediction.getId());
+            profile.record("publish", stageStart, 1);
         }
-        catch (QuotePriceCalculationException | SentimentException exception) {
-            LOG.info(exception.getLocalizedMessage());
+        finally {
+            // Outstanding reads are no longer needed once generation has returned early or failed
+            Stream.of(quotesFuture, storySentimentsFuture, predictionsForCompanyFuture, openPredictionsForCompanyFuture)
+                    .forEach(future -> future.cancel(true));
         }
-        catch (final Exception exception)
-        {
-            LOG.error(exception.getLocalizedMessage(), exception);
+    }
 
-            throw new RuntimeException(exception);
+    private static <T> T await(final CompletableFuture<T> future, final long deadline) throws Exception {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        catch (ExecutionException exception) {
+            if (exception.getCause() instanceof Exception) {
+                throw (Exception) exception.getCause();
+            }
+            throw exception;
         }
     }
 
@@ -4,6 +4,7 @@ import uk.co.jassoft.markets.datamodel.Direction;
 import uk.co.jassoft.markets.datamodel.company.Company;
 import uk.co.jassoft.markets.datamodel.company.Exchange;
 import uk.co.jassoft.markets.datamodel.company.quote.Quote;
+import uk.co.jassoft.markets.datamodel.company.quote.QuoteBuilder;
 import uk.co.jassoft.markets.datamodel.prediction.Prediction;
 import uk.co.jassoft.markets.datamodel.system.Queue;
 import uk.co.jassoft.markets.repository.CompanyRepository;
@@ -13,17 +14,28 @@ import uk.co.jassoft.markets.repository.QuoteRepository;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.bson.types.ObjectId;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 /**
  * Created by jonshaw on 08/12/2015.
@@ -48,6 +60,32 @@ public class PredictionValidator {
     @Autowired
     private JmsTemplate jmsTemplate;
 
+    @Autowired
+    private LeaseManager leaseManager;
+
+    @Autowired
+    private QuoteStore quoteStore;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Value("${predictor.validation.partitions:1}")
+    private int partitions;
+
+    @Value("${predictor.validation.pageSize:500}")
+    private int pageSize;
+
+    @Value("${predictor.validation.checkpointInterval:100}")
+    private int checkpointInterval;
+
+    /** Maximum predictions to validate in a run, 0 for no limit */
+    @Value("${predictor.validation.maxItems:0}")
+    private long maxItems;
+
+    /** Maximum duration of a run, 0 for no limit */
+    @Value("${predictor.validation.maxSeconds:0}")
+    private long maxSeconds;
+
     void missingQuoteData(final Pair<String,Date> data)
     {
         jmsTemplate.convertAndSend(Queue.MissingQuoteData.toString(), data);
@@ -57,88 +95,216 @@ public class PredictionValidator {
 
         final Set<Pair<String,Date>> missingDatas = new HashSet<>();
 
-        final List<Prediction> unValidatedPredictions = predictionRepository.findByCorrectIsNull();
+        final Budget budget = new Budget(maxItems, maxSeconds);
+
+        final Map<Integer, List<String>> companiesByPartition = companiesByPartition();
 
-        unValidatedPredictions.stream().filter(isOverdue()).forEach(prediction -> {
+        // Start each instance at a different partition so that several instances spread over them
+        final int firstPartition = Math.floorMod(leaseManager.getOwner().hashCode(), partitions);
 
-            DateTime startDate = new DateTime(prediction.getPredictionDate());
+        for (int i = 0; i < partitions && !budget.isExhausted(); i++) {
+            final int partition = (firstPartition + i) % partitions;
+            final String leaseName = "validation-" + partition;
 
-            if(startDate.getDayOfWeek() == 6) {
-                startDate = startDate.minusDays(1);
+            if (partitions > 1 && !companiesByPartition.containsKey(partition)) {
+                continue;
             }
 
-            if(startDate.getDayOfWeek() == 7) {
-                startDate = startDate.minusDays(2);
+            if (!leaseManager.acquire(leaseName)) {
+                LOG.info("Validation partition [{}] of [{}] is owned by another instance - Skipping", partition, partitions);
+                continue;
             }
 
-            final Company company = companyRepository.findOne(prediction.getCompany());
-            final Exchange exchange = exchangeRepository.findOne(company.getExchange());
+            try {
+                validatePartition(companiesByPartition.get(partition), leaseName, budget, missingDatas);
+            }
+            finally {
+                leaseManager.release(leaseName);
+            }
+        }
 
-            Quote quoteAtPrediction = getQuoteAtDate(exchange, company, startDate.toDate());
+//      Load data for missing dates
+        missingDatas.forEach(date -> {
+            LOG.debug("Requesting Retrieval of Quote data for Date [{}] for Exchange [{}]", DateUtils.truncate(date.getValue(), Calendar.DATE), date.getKey());
+            missingQuoteData(date);
+        });
 
-            if(quoteAtPrediction == null) {
-                LOG.debug("Quote at prediction not present for date [{}] Requesting retrieval", DateUtils.truncate(startDate.toDate(), Calendar.DATE));
-                Date midnight = startDate.toDateMidnight().toDate();
-                if(!missingDatas.contains(midnight)) {
-                    missingDatas.add(new ImmutablePair<>(company.getExchange(), midnight));
-                }
-                return;
-            }
+    }
+
+    /**
+     * Works through the unvalidated predictions of the partition's companies, or of every company when
+     * there is a single partition, in id order starting after the partition's checkpoint.
+     * The checkpoint is saved periodically and when the budget runs out, and cleared once the end is
+     * reached so the next run starts again from the top to retry any predictions still missing quotes.
+     */
+    private void validatePartition(final List<String> companies, final String leaseName, final Budget budget, final Set<Pair<String,Date>> missingDatas) {
+
+        final StageProfile profile = new StageProfile(leaseName);
 
-            DateTime endDate = new DateTime(prediction.getPredictionDate()).plusMillis(prediction.getValidityPeriod().intValue());
+        final ValidationCheckpoint checkpoint = mongoOperations.findById(leaseName, ValidationCheckpoint.class);
 
-            if(endDate.getDayOfWeek() == 6) {
-                endDate = endDate.plusDays(2);
+        String lastPrediction = checkpoint == null ? null : checkpoint.getLastPrediction();
+        int sinceCheckpoint = 0;
+
+        if (lastPrediction != null) {
+            LOG.info("Resuming validation of [{}] after Prediction [{}]", leaseName, lastPrediction);
+        }
+
+        while (true) {
+            final Query page = query(where("correct").is(null)).with(new Sort(Sort.Direction.ASC, "id")).limit(pageSize);
+
+            if (companies != null) {
+                page.addCriteria(where("company").in(companies));
             }
 
-            if(endDate.getDayOfWeek() == 7) {
-                endDate = endDate.plusDays(1);
+            if (lastPrediction != null) {
+                page.addCriteria(where("id").gt(ObjectId.isValid(lastPrediction) ? new ObjectId(lastPrediction) : lastPrediction));
             }
 
-            Quote quoteAtEndOfPrediction = getQuoteAtDate(exchange, company, endDate.toDate());
+            final List<Prediction> unValidatedPredictions = profile.time("loadPredictions", () -> mongoOperations.find(page, Prediction.class));
 
-            if(quoteAtEndOfPrediction == null) {
-                LOG.debug("Quote at end of prediction not present for date [{}] Requesting retrieval", DateUtils.truncate(endDate.toDate(), Calendar.DATE));
-                Date midnight = endDate.toDateMidnight().toDate();
-                if(!missingDatas.contains(midnight)) {
-                    missingDatas.add(new ImmutablePair<>(company.getExchange(), midnight));
+            if (unValidatedPredictions.isEmpty()) {
+                saveCheckpoint(leaseName, null);
+                break;
+            }
+
+            for (Prediction prediction : unValidatedPredictions) {
+                if (budget.isExhausted()) {
+                    LOG.info("Validation budget exhausted for [{}] after [{}] Predictions - Stopping at Prediction [{}]", leaseName, budget.getProcessed(), lastPrediction);
+                    saveCheckpoint(leaseName, lastPrediction);
+                    LOG.debug("Validation stages for [{}] {}", profile.getSubject(), profile);
+                    return;
+                }
+
+                lastPrediction = prediction.getId();
+
+                if (!isOverdue().test(prediction)) {
+                    continue;
+                }
+
+                if (!leaseManager.heartbeat(leaseName)) {
+                    LOG.debug("Validation stages for [{}] {}", profile.getSubject(), profile);
+                    return;
+                }
+
+                final long start = System.nanoTime();
+                validatePrediction(prediction, missingDatas, profile);
+                profile.record("validate", start, 1);
+                budget.processed();
+
+                LOG.debug("Validation of Prediction [{}] for Company [{}] took [{}]ms", prediction.getId(), prediction.getCompany(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+                if (++sinceCheckpoint >= checkpointInterval) {
+                    saveCheckpoint(leaseName, lastPrediction);
+                    sinceCheckpoint = 0;
                 }
-                return;
             }
+        }
 
-            Direction quoteDirection = Direction.None;
+        LOG.debug("Validation stages for [{}] {}", profile.getSubject(), profile);
+    }
 
-            if(quoteAtPrediction.getOpen() > quoteAtEndOfPrediction.getClose())
-                quoteDirection = Direction.Down;
+    /**
+     * @return the ids of all companies grouped by partition, or an empty map when there is a single partition
+     */
+    private Map<Integer, List<String>> companiesByPartition() {
+        if (partitions <= 1) {
+            return Collections.emptyMap();
+        }
 
-            if(quoteAtPrediction.getOpen() < quoteAtEndOfPrediction.getClose())
-                quoteDirection = Direction.Up;
+        final Query companies = new Query();
+        companies.fields().include("id");
 
-            if(quoteAtPrediction.getOpen() == quoteAtEndOfPrediction.getClose())
-                quoteDirection = Direction.None;
+        return mongoOperations.find(companies, Company.class).stream()
+                .map(Company::getId)
+                .collect(Collectors.groupingBy(companyId -> partitionOf(companyId, partitions)));
+    }
 
-            prediction.setCorrect(quoteDirection == prediction.getDirection());
-            prediction.setActualChange(quoteAtEndOfPrediction.getClose() - quoteAtPrediction.getOpen());
+    private void saveCheckpoint(final String leaseName, final String lastPrediction) {
+        mongoOperations.upsert(query(where("partition").is(leaseName)),
+                Update.update("lastPrediction", lastPrediction).set("updated", new Date()),
+                ValidationCheckpoint.class);
+    }
 
-            double actualEarningPerShare = Math.abs(prediction.getLastBid() - (prediction.getLastAsk() - prediction.getActualChange()));
+    private void validatePrediction(final Prediction prediction, final Set<Pair<String,Date>> missingDatas, final StageProfile profile) {
 
-            prediction.setActualEarningPerShare(actualEarningPerShare);
+        DateTime startDate = new DateTime(prediction.getPredictionDate());
 
-            LOG.info("Prediction Validated for Company [{}] Direction [{}] - Correct? [{}]", company.getName(), prediction.getDirection(), prediction.getCorrect());
+        if(startDate.getDayOfWeek() == 6) {
+            startDate = startDate.minusDays(1);
+        }
 
-            predictionRepository.save(prediction);
+        if(startDate.getDayOfWeek() == 7) {
+            startDate = startDate.minusDays(2);
+        }
 
-        });
+        final Company company = companyRepository.findOne(prediction.getCompany());
+        final Exchange exchange = exchangeRepository.findOne(company.getExchange());
 
-//      Load data for missing dates
-        missingDatas.forEach(date -> {
-            LOG.debug("Requesting Retrieval of Quote data for Date [{}] for Exchange [{}]", DateUtils.truncate(date.getValue(), Calendar.DATE), date.getKey());
-            missingQuoteData(date);
-        });
+        Quote quoteAtPrediction = getQuoteAtDate(exchange, company, startDate.toDate());
+
+        if(quoteAtPrediction == null) {
+            LOG.debug("Quote at prediction not present for date [{}] Requesting retrieval", DateUtils.truncate(startDate.toDate(), Calendar.DATE));
+            Date midnight = startDate.toDateMidnight().toDate();
+            if(!missingDatas.contains(midnight)) {
+                missingDatas.add(new ImmutablePair<>(company.getExchange(), midnight));
+            }
+            return;
+        }
+
+        DateTime endDate = new DateTime(prediction.getPredictionDate()).plusMillis(prediction.getValidityPeriod().intValue());
+
+        if(endDate.getDayOfWeek() == 6) {
+            endDate = endDate.plusDays(2);
+        }
+
+        if(endDate.getDayOfWeek() == 7) {
+            endDate = endDate.plusDays(1);
+        }
+
+        Quote quoteAtEndOfPrediction = getQuoteAtDate(exchange, company, endDate.toDate());
+
+        if(quoteAtEndOfPrediction == null) {
+            LOG.debug("Quote at end of prediction not present for date [{}] Requesting retrieval", DateUtils.truncate(endDate.toDate(), Calendar.DATE));
+            Date midnight = endDate.toDateMidnight().toDate();
+            if(!missingDatas.contains(midnight)) {
+                missingDatas.add(new ImmutablePair<>(company.getExchange(), midnight));
+            }
+            return;
+        }
+
+        Direction quoteDirection = Direction.None;
+
+        if(quoteAtPrediction.getOpen() > quoteAtEndOfPrediction.getClose())
+            quoteDirection = Direction.Down;
+
+        if(quoteAtPrediction.getOpen() < quoteAtEndOfPrediction.getClose())
+            quoteDirection = Direction.Up;
+
+        if(quoteAtPrediction.getOpen() == quoteAtEndOfPrediction.getClose())
+            quoteDirection = Direction.None;
+
+        prediction.setCorrect(quoteDirection == prediction.getDirection());
+        prediction.setActualChange(quoteAtEndOfPrediction.getClose() - quoteAtPrediction.getOpen());
 
+        double actualEarningPerShare = Math.abs(prediction.getLastBid() - (prediction.getLastAsk() - prediction.getActualChange()));
+
+        prediction.setActualEarningPerShare(actualEarningPerShare);
+
+        LOG.info("Prediction Validated for Company [{}] Direction [{}] - Correct? [{}]", company.getName(), prediction.getDirection(), prediction.getCorrect());
+
+        profile.time("save", () -> predictionRepository.save(prediction));
     }
 
     private Quote getQuoteAtDate(final Exchange exchange, final Company company, final Date date) {
+        if(quoteStore.isEnabled()) {
+            Quote quote = getStoredQuoteAtDate(exchange, company, date);
+
+            if(quote != null) {
+                return quote;
+            }
+        }
+
         if(exchange.isIntraday()) {
             List<Quote> quotes = quoteRepository.findByCompanyAndIntradayAndDateLessThan(company.getId(), false, date, new PageRequest(0,1, new Sort(Sort.Direction.DESC, "date")));
 
@@ -150,6 +316,68 @@ public class PredictionValidator {
         return quoteRepository.findByCompanyAndDateAndIntraday(company.getId(), DateUtils.truncate(date, Calendar.DATE), false);
     }
 
+    /**
+     * Looks the quote up in the local {@link QuoteStore} in the same way as {@link #getQuoteAtDate},
+     * returning null when it is not present so that Mongo is checked instead.
+     */
+    private Quote getStoredQuoteAtDate(final Exchange exchange, final Company company, final Date date) {
+        try {
+            QuoteColumns quotes = quoteStore.getQuotes(company.getId());
+
+            int row = -1;
+
+            if(exchange.isIntraday()) {
+                row = quotes.floorBefore(date.getTime());
+            }
+
+            if(row < 0) {
+                row = quotes.indexOf(DateUtils.truncate(date, Calendar.DATE).getTime());
+            }
+
+            if(row < 0) {
+                return null;
+            }
+
+            return QuoteBuilder.aQuote()
+                    .withCompany(company.getId())
+                    .withDate(new Date(quotes.date(row)))
+                    .withOpen(quotes.open(row))
+                    .withClose(quotes.close(row))
+                    .build();
+        }
+        catch (IOException exception) {
+            LOG.warn("Unable to read Quote Store for Company [{}] - Falling back to Mongo", company.getId(), exception);
+            return null;
+        }
+    }
+
+    private static class Budget {
+        private final long maxItems;
+        private final long deadline;
+        private long processed;
+
+        Budget(final long maxItems, final long maxSeconds) {
+            this.maxItems = maxItems;
+            this.deadline = maxSeconds > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(maxSeconds) : 0;
+        }
+
+        void processed() {
+            processed++;
+        }
+
+        long getProcessed() {
+            return processed;
+        }
+
+        boolean isExhausted() {
+            return (maxItems > 0 && processed >= maxItems) || (deadline != 0 && System.nanoTime() - deadline >= 0);
+        }
+    }
+
+    public static int partitionOf(final String companyId, final int partitions) {
+        return Math.floorMod(companyId.hashCode(), partitions);
+    }
+
     public static Predicate<Prediction> isOverdue() {
         return prediction -> new DateTime(prediction.getPredictionDate()).plusMillis(prediction.getValidityPeriod().intValue()).isBeforeNow();
     }
@@ -0,0 +1,203 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.company.quote.Quote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The daily quotes of one company held as memory mapped columns of primitives, one file per column,
+ * ordered by date. Reads go straight to the mapped files without copying.
+ */
+public class QuoteColumns implements Closeable {
+
+    private static final String[] COLUMNS = { "date", "open", "close", "bid", "ask" };
+
+    private static final int DATE = 0;
+    private static final int OPEN = 1;
+    private static final int CLOSE = 2;
+    private static final int BID = 3;
+    private static final int ASK = 4;
+
+    private static final int WIDTH = 8;
+
+    private final FileChannel[] channels = new FileChannel[COLUMNS.length];
+
+    private final MappedByteBuffer[] buffers = new MappedByteBuffer[COLUMNS.length];
+
+    private volatile int size;
+
+    private int written;
+
+    private long lastWrittenDate = Long.MIN_VALUE;
+
+    private QuoteColumns(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        for (int column = 0; column < COLUMNS.length; column++) {
+            channels[column] = FileChannel.open(directory.resolve(COLUMNS[column] + ".col"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        remap();
+    }
+
+    public static QuoteColumns open(final Path directory) throws IOException {
+        return new QuoteColumns(directory);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long date(final int row) {
+        return buffers[DATE].getLong(row * WIDTH);
+    }
+
+    public double open(final int row) {
+        return buffers[OPEN].getDouble(row * WIDTH);
+    }
+
+    public double close(final int row) {
+        return buffers[CLOSE].getDouble(row * WIDTH);
+    }
+
+    public double bid(final int row) {
+        return buffers[BID].getDouble(row * WIDTH);
+    }
+
+    public double ask(final int row) {
+        return buffers[ASK].getDouble(row * WIDTH);
+    }
+
+    public synchronized long lastDate() {
+        return lastWrittenDate;
+    }
+
+    /**
+     * @return the row dated exactly at the given time, or -1
+     */
+    public int indexOf(final long date) {
+        final int row = ceiling(date);
+
+        return row < size && date(row) == date ? row : -1;
+    }
+
+    /**
+     * @return the last row dated strictly before the given time, or -1
+     */
+    public int floorBefore(final long date) {
+        return ceiling(date) - 1;
+    }
+
+    /**
+     * @return the first row dated at or after the given time, or {@link #size()} if there is none
+     */
+    public int ceiling(final long date) {
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (date(middle) < date) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Appends a quote, replacing the last row when it has the same date. Quotes dated before the
+     * last row are rejected as the columns must stay ordered, a rebuild is needed to include them.
+     *
+     * @return false if the quote was rejected
+     */
+    public synchronized boolean append(final long date, final double open, final double close, final double bid, final double ask) throws IOException {
+        final boolean appended = write(date, open, close, bid, ask);
+
+        if (written != size) {
+            remap();
+        }
+
+        return appended;
+    }
+
+    /**
+     * Appends quotes in date order as {@link #append} does, mapping the new rows once at the end.
+     *
+     * @return the number of quotes rejected for being out of order
+     */
+    public synchronized int appendAll(final Iterable<Quote> quotes) throws IOException {
+        int rejected = 0;
+
+        for (Quote quote : quotes) {
+            if (!write(quote.getDate().getTime(), quote.getOpen(), quote.getClose(), quote.getBid(), quote.getAsk())) {
+                rejected++;
+            }
+        }
+
+        if (written != size) {
+            remap();
+        }
+
+        return rejected;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private boolean write(final long date, final double open, final double close, final double bid, final double ask) throws IOException {
+        if (date < lastWrittenDate) {
+            return false;
+        }
+
+        final int row = date == lastWrittenDate ? written - 1 : written;
+
+        write(DATE, row, ByteBuffer.allocate(WIDTH).putLong(0, date));
+        write(OPEN, row, ByteBuffer.allocate(WIDTH).putDouble(0, open));
+        write(CLOSE, row, ByteBuffer.allocate(WIDTH).putDouble(0, close));
+        write(BID, row, ByteBuffer.allocate(WIDTH).putDouble(0, bid));
+        write(ASK, row, ByteBuffer.allocate(WIDTH).putDouble(0, ask));
+
+        written = Math.max(written, row + 1);
+        lastWrittenDate = date;
+
+        return true;
+    }
+
+    private void write(final int column, final int row, final ByteBuffer value) throws IOException {
+        channels[column].write(value, (long) row * WIDTH);
+    }
+
+    private void remap() throws IOException {
+        // Size by the shortest column so a partially written row is never read
+        long rows = Long.MAX_VALUE;
+
+        for (FileChannel channel : channels) {
+            rows = Math.min(rows, channel.size() / WIDTH);
+        }
+
+        for (int column = 0; column < COLUMNS.length; column++) {
+            buffers[column] = channels[column].map(FileChannel.MapMode.READ_ONLY, 0, rows * WIDTH);
+        }
+
+        size = (int) rows;
+        written = size;
+        lastWrittenDate = size == 0 ? Long.MIN_VALUE : date(size - 1);
+    }
+}
@@ -0,0 +1,204 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.company.Company;
+import uk.co.jassoft.markets.datamodel.company.quote.Quote;
+import uk.co.jassoft.markets.repository.CompanyRepository;
+import uk.co.jassoft.markets.repository.QuoteRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Optional local copy of each company's daily quotes as {@link QuoteColumns}, enabled by setting
+ * predictor.quoteStore.directory.
+ *
+ * Quotes that have landed in Mongo since the last refresh are appended when a company is looked up.
+ * Columns are append only, so a company whose store has fallen behind Mongo, such as after a backfill
+ * of older quotes, is rebuilt from Mongo instead. Run the Predictor with {@link #REBUILD} to populate
+ * the store from scratch.
+ */
+@Component
+public class QuoteStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QuoteStore.class);
+
+    public static final String REBUILD = "RebuildQuoteStore";
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Autowired
+    private QuoteRepository quoteRepository;
+
+    @Autowired
+    private CompanyRepository companyRepository;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Value("${predictor.quoteStore.directory:}")
+    private String directory;
+
+    @Value("${predictor.quoteStore.refreshSeconds:300}")
+    private long refreshSeconds;
+
+    private final Map<String, QuoteColumns> columns = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> lastRefreshed = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return !directory.isEmpty();
+    }
+
+    /**
+     * @return the company's quote columns, refreshed from Mongo if they have not been recently
+     */
+    public QuoteColumns getQuotes(final String companyId) throws IOException {
+        QuoteColumns quotes = open(companyId);
+
+        final Long refreshed = lastRefreshed.get(companyId);
+
+        if (refreshed == null || System.currentTimeMillis() - refreshed >= TimeUnit.SECONDS.toMillis(refreshSeconds)) {
+            if (!refresh(companyId, quotes)) {
+                rebuild(companyId);
+
+                quotes = open(companyId);
+                lastRefreshed.put(companyId, System.currentTimeMillis());
+            }
+        }
+
+        return quotes;
+    }
+
+    public void rebuild() throws IOException {
+        requireEnabled();
+
+        for (Company company : companyRepository.findAll()) {
+            rebuild(company.getId());
+        }
+    }
+
+    public void rebuild(final String companyId) throws IOException {
+        close(companyId);
+
+        final Path companyDirectory = companyDirectory(companyId);
+        delete(companyDirectory);
+
+        try (QuoteColumns quotes = QuoteColumns.open(companyDirectory)) {
+            int page = 0;
+            List<Quote> batch;
+
+            do {
+                batch = quoteRepository.findByCompanyAndIntraday(companyId, false, new PageRequest(page++, PAGE_SIZE, new Sort(Sort.Direction.ASC, "date")));
+                quotes.appendAll(batch);
+            } while (batch.size() == PAGE_SIZE);
+
+            LOG.info("Rebuilt Quote Store for Company [{}] with [{}] quotes", companyId, quotes.size());
+        }
+    }
+
+    @PreDestroy
+    public void closeAll() throws IOException {
+        for (String companyId : columns.keySet()) {
+            close(companyId);
+        }
+    }
+
+    /**
+     * @return false if the columns no longer hold every daily quote in Mongo and so must be rebuilt
+     */
+    private boolean refresh(final String companyId, final QuoteColumns quotes) throws IOException {
+        // Includes the last stored day again so that in-place updates to it are picked up
+        final List<Quote> newQuotes = mongoOperations.find(query(where("company").is(companyId)
+                        .and("intraday").is(false)
+                        .and("date").gte(new Date(Math.max(0, quotes.lastDate()))))
+                        .with(new Sort(Sort.Direction.ASC, "date")),
+                Quote.class);
+
+        final int rejected = quotes.appendAll(newQuotes);
+
+        // Quotes backfilled before the last stored day are neither fetched nor appended above
+        final long stored = mongoOperations.count(query(where("company").is(companyId).and("intraday").is(false)), Quote.class);
+
+        if (rejected > 0 || quotes.size() < stored) {
+            LOG.info("Quote Store for Company [{}] holds [{}] of [{}] quotes - Rebuilding", companyId, quotes.size(), stored);
+            return false;
+        }
+
+        lastRefreshed.put(companyId, System.currentTimeMillis());
+
+        return true;
+    }
+
+    private QuoteColumns open(final String companyId) throws IOException {
+        QuoteColumns quotes = columns.get(companyId);
+
+        if (quotes == null) {
+            synchronized (columns) {
+                quotes = columns.get(companyId);
+
+                if (quotes == null) {
+                    quotes = QuoteColumns.open(companyDirectory(companyId));
+                    columns.put(companyId, quotes);
+                }
+            }
+        }
+
+        return quotes;
+    }
+
+    private void close(final String companyId) throws IOException {
+        lastRefreshed.remove(companyId);
+
+        final QuoteColumns quotes = columns.remove(companyId);
+
+        if (quotes != null) {
+            quotes.close();
+        }
+    }
+
+    private Path companyDirectory(final String companyId) {
+        requireEnabled();
+
+        return Paths.get(directory, companyId);
+    }
+
+    // Without a directory the company directories would resolve against the working directory
+    private void requireEnabled() {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Quote Store is not configured - set predictor.quoteStore.directory");
+        }
+    }
+
+    private static void delete(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
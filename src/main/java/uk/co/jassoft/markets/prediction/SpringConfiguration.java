@@ -4,36 +4,94 @@ import uk.co.jassoft.markets.BaseSpringConfiguration;
 import uk.co.jassoft.markets.datamodel.prediction.PredictorType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Created by jonshaw on 13/07/15.
+ *
+ * Components in this package are initialised lazily, so a run only builds the beans it uses;
+ * a PredictionValidator run never starts the generation I/O pool. The Mongo and JMS wiring
+ * from {@link BaseSpringConfiguration} is still created eagerly.
  */
 @Configuration
-@ComponentScan("uk.co.jassoft.markets.prediction")
+@ComponentScan(value = "uk.co.jassoft.markets.prediction", lazyInit = true)
 public class SpringConfiguration extends BaseSpringConfiguration {
 
     private static final Logger LOG = LoggerFactory.getLogger(SpringConfiguration.class);
 
+    /**
+     * Pool for the independent repository reads issued by a single prediction generation.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    @Lazy
+    public ExecutorService predictorIoExecutor(@Value("${predictor.io.threads:4}") int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "predictor-io-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     public static void main(String[] args) throws Exception {
 
         ConfigurableApplicationContext context = SpringApplication.run(SpringConfiguration.class, args);
 
+        if (QuoteStore.REBUILD.equals(args[0])) {
+            QuoteStore quoteStore = context.getBean(QuoteStore.class);
+
+            if (!quoteStore.isEnabled()) {
+                LOG.error("Cannot rebuild Quote Store - predictor.quoteStore.directory is not set");
+
+                context.close();
+                System.exit(1);
+            }
+
+            LOG.info("Rebuilding Quote Store");
+
+            quoteStore.rebuild();
+
+            context.close();
+            System.exit(0);
+        }
+
         PredictorType predictorType = PredictorType.valueOf(args[0]);
 
         LOG.info("Running Predictor for Type [{}] Args [{}]", predictorType, args);
 
-        switch (predictorType) {
-            case PredictionValidator:
-                context.getBean(PredictionValidator.class).validatePredictions();
-                break;
+        FlightRecording flightRecording = context.getBean(FlightRecording.class);
 
-            case PredictionGenerator:
-                context.getBean(PredictionGenerator.class).generatePrediction(args[1]);
-                break;
+        flightRecording.start(predictorType.name());
+
+        try {
+            switch (predictorType) {
+                case PredictionValidator:
+                    context.getBean(PredictionValidator.class).validatePredictions();
+                    break;
+
+                case PredictionGenerator:
+                    context.getBean(GenerationRequestQueue.class).process(Arrays.stream(args)
+                            .skip(1)
+                            .filter(arg -> !arg.startsWith("--"))
+                            .collect(Collectors.toList()));
+                    break;
+            }
+        }
+        finally {
+            flightRecording.stop();
         }
 
         context.close();
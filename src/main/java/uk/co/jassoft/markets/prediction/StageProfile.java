@@ -0,0 +1,94 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.springframework.data.domain.Page;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Wall clock time and record counts for the stages of a single generation or validation run.
+ *
+ * Stages may be recorded from several threads, and repeated stages are accumulated.
+ */
+public class StageProfile {
+
+    private final String subject;
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    public StageProfile(final String subject) {
+        this.subject = subject;
+    }
+
+    public <T> T time(final String stage, final Supplier<T> supplier) {
+        final long start = System.nanoTime();
+        final T result = supplier.get();
+
+        record(stage, start, countOf(result));
+
+        return result;
+    }
+
+    public void record(final String stage, final long startNanos, final long records) {
+        final long elapsed = System.nanoTime() - startNanos;
+
+        synchronized (stages) {
+            stages.computeIfAbsent(stage, name -> new Stage()).add(elapsed, records);
+        }
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        synchronized (stages) {
+            stages.forEach((name, stage) -> builder.append(builder.length() == 0 ? "" : " ")
+                    .append(name).append('=').append(stage));
+        }
+
+        return builder.toString();
+    }
+
+    private static long countOf(final Object result) {
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+
+        if (result instanceof Page) {
+            return ((Page<?>) result).getNumberOfElements();
+        }
+
+        return result == null ? 0 : 1;
+    }
+
+    private static class Stage {
+        private long invocations;
+        private long totalNanos;
+        private long maxNanos;
+        private long records;
+
+        void add(final long elapsedNanos, final long recordCount) {
+            invocations++;
+            totalNanos += elapsedNanos;
+            maxNanos = Math.max(maxNanos, elapsedNanos);
+            records += recordCount;
+        }
+
+        @Override
+        public String toString() {
+            if (invocations == 1) {
+                return TimeUnit.NANOSECONDS.toMillis(totalNanos) + "ms[" + records + "]";
+            }
+
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos) + "ms[" + records + "] x" + invocations
+                    + " max " + TimeUnit.NANOSECONDS.toMillis(maxNanos) + "ms";
+        }
+    }
+}
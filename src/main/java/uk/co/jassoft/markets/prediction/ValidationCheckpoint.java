@@ -0,0 +1,33 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * The last prediction looked at by validation of a partition, so an interrupted or budgeted
+ * run can be resumed from where it stopped.
+ */
+@Document
+public class ValidationCheckpoint {
+
+    @Id
+    private String partition;
+
+    private String lastPrediction;
+
+    private Date updated;
+
+    public String getPartition() {
+        return partition;
+    }
+
+    public String getLastPrediction() {
+        return lastPrediction;
+    }
+
+    public Date getUpdated() {
+        return updated;
+    }
+}
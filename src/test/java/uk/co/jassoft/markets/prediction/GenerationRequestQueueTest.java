@@ -0,0 +1,169 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.company.quote.QuoteBuilder;
+import uk.co.jassoft.markets.repository.QuoteRepository;
+import uk.co.jassoft.utils.BaseRepositoryTest;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SpringConfiguration.class)
+@IntegrationTest
+public class GenerationRequestQueueTest extends BaseRepositoryTest {
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private QuoteRepository quoteRepository;
+
+    @Autowired
+    private PredictionGenerator predictionGenerator;
+
+    @Autowired
+    private GenerationRequestQueue target;
+
+    private PredictionGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        quoteRepository.deleteAll();
+        mongoOperations.dropCollection(GenerationRequest.class);
+
+        generator = mock(PredictionGenerator.class);
+        when(generator.generatePrediction(anyString())).thenReturn(true);
+        ReflectionTestUtils.setField(target, "predictionGenerator", generator);
+        ((AtomicLong) ReflectionTestUtils.getField(target, "generations")).set(0);
+        ((AtomicLong) ReflectionTestUtils.getField(target, "requestsGenerated")).set(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReflectionTestUtils.setField(target, "predictionGenerator", predictionGenerator);
+        ReflectionTestUtils.setField(target, "debounceMillis", 0l);
+    }
+
+    @Test
+    public void testProcess_withRepeatedRequests_generatesOnceAndCoalesces() throws Exception {
+        target.submit("company");
+        target.submit("company");
+
+        GenerationRequest request = mongoOperations.findById("company", GenerationRequest.class);
+
+        assertEquals("company", request.getCompany());
+        assertEquals(2, request.getRequests());
+
+        target.process(Arrays.asList("company"));
+
+        verify(generator, times(1)).generatePrediction("company");
+        assertEquals(0, target.getDepth());
+        assertEquals(2d / 3d, target.getCoalesceRate(), 0.01);
+    }
+
+    @Test
+    public void testDrain_withRequestInsideDebounceWindow_leavesItQueued() throws Exception {
+        ReflectionTestUtils.setField(target, "debounceMillis", 60000l);
+
+        target.submit("company");
+        target.drain();
+
+        verify(generator, never()).generatePrediction(anyString());
+        assertEquals(1, target.getDepth());
+    }
+
+    @Test
+    public void testDrain_withClaimedRequest_doesNotGenerateItAgain() throws Exception {
+        target.submit("company");
+        target.drain();
+        target.drain();
+
+        verify(generator, times(1)).generatePrediction("company");
+        assertEquals(0, target.getDepth());
+    }
+
+    @Test
+    public void testDrain_withLeaseHeldElsewhere_resubmitsRequest() throws Exception {
+        when(generator.generatePrediction("company")).thenReturn(false);
+
+        target.submit("company");
+        target.submit("company");
+        target.drain();
+
+        GenerationRequest request = mongoOperations.findById("company", GenerationRequest.class);
+
+        assertEquals(2, request.getRequests());
+        assertEquals(0, target.getCoalesceRate(), 0);
+
+        when(generator.generatePrediction("company")).thenReturn(true);
+
+        target.drain();
+
+        verify(generator, times(2)).generatePrediction("company");
+        assertEquals(0, target.getDepth());
+    }
+
+    @Test
+    public void testDrain_withFailingGeneration_resubmitsRequestAndCarriesOn() throws Exception {
+        when(generator.generatePrediction("failing")).thenThrow(new RuntimeException("failed"));
+
+        target.submit("failing");
+        target.submit("other");
+        target.drain();
+
+        verify(generator).generatePrediction("other");
+        assertEquals(1, target.getDepth());
+        assertEquals(1, mongoOperations.findById("failing", GenerationRequest.class).getRequests());
+    }
+
+    @Test
+    public void testDrain_withExchangesInDifferentStates_generatesOpenThenOpeningThenClosed() throws Exception {
+        stageIntradayQuote("open", new DateTime().minusMinutes(5));
+        stageIntradayQuote("opening", new DateTime().minusDays(1).plusMinutes(30));
+
+        target.submit("closed");
+        target.submit("opening");
+        target.submit("open");
+
+        assertEquals(GenerationRequestQueue.PRIORITY_OPEN, mongoOperations.findById("open", GenerationRequest.class).getPriority());
+        assertEquals(GenerationRequestQueue.PRIORITY_OPENING, mongoOperations.findById("opening", GenerationRequest.class).getPriority());
+        assertEquals(GenerationRequestQueue.PRIORITY_CLOSED, mongoOperations.findById("closed", GenerationRequest.class).getPriority());
+
+        target.drain();
+
+        InOrder order = inOrder(generator);
+        order.verify(generator).generatePrediction("open");
+        order.verify(generator).generatePrediction("opening");
+        order.verify(generator).generatePrediction("closed");
+    }
+
+    private void stageIntradayQuote(final String companyId, final DateTime date) {
+        quoteRepository.save(QuoteBuilder.aQuote()
+                .withCompany(companyId)
+                .withDate(date.toDate())
+                .withIntraday(true)
+                .build());
+    }
+}
@@ -0,0 +1,127 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.Direction;
+import uk.co.jassoft.markets.datamodel.learningmodel.LearningModelRecordBuilder;
+import uk.co.jassoft.markets.repository.LearningModelRepository;
+import uk.co.jassoft.utils.BaseRepositoryTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SpringConfiguration.class)
+@IntegrationTest
+public class LearningModelStatisticsCalculatorTest extends BaseRepositoryTest {
+
+    private static final String COMPANY = "TestCompany";
+
+    @Autowired
+    private LearningModelRepository learningModelRepository;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private LearningModelStatisticsCalculator target;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        learningModelRepository.deleteAll();
+        mongoOperations.dropCollection(LearningModelSketch.class);
+    }
+
+    @Test
+    public void testCalculate_withNoMatchingRecords_returnsEmptyStatisticsFromBothPaths() throws Exception {
+        stageRecord(Direction.Up, Direction.Down, -5, -2);
+
+        LearningModelStatistics inMemory = target.calculateInMemory(COMPANY, Direction.Down, Direction.Down, 0d);
+        LearningModelStatistics aggregated = target.calculateWithAggregation(COMPANY, Direction.Down, Direction.Down, 0d);
+
+        assertFalse(inMemory.getAverage().isPresent());
+        assertFalse(aggregated.getAverage().isPresent());
+        assertFalse(aggregated.getMax().isPresent());
+    }
+
+    @Test
+    public void testCalculate_withMixedRecords_aggregationMatchesInMemory() throws Exception {
+        stageRecord(Direction.Down, Direction.Down, -5, -2);
+        stageRecord(Direction.Down, Direction.Down, -3, 1.5);
+        stageRecord(Direction.Down, Direction.Down, -1, 4);
+        stageRecord(Direction.Down, Direction.Down, 2, 10);
+        stageRecord(Direction.Up, Direction.Down, -5, 7);
+
+        LearningModelStatistics inMemory = target.calculateInMemory(COMPANY, Direction.Down, Direction.Down, 0d);
+        LearningModelStatistics aggregated = target.calculateWithAggregation(COMPANY, Direction.Down, Direction.Down, 0d);
+
+        assertEquals(3, inMemory.getCount());
+        assertEquals(inMemory.getCount(), aggregated.getCount());
+        assertEquals(inMemory.getAverage().getAsDouble(), aggregated.getAverage().getAsDouble(), 0);
+        assertEquals(4, aggregated.getMax().getAsDouble(), 0);
+        assertEquals(inMemory.getMax().getAsDouble(), aggregated.getMax().getAsDouble(), 0);
+    }
+
+    @Test
+    public void testCalculate_withThresholdOnBandEdge_sketchMatchesInMemoryAsRecordsAreAdded() throws Exception {
+        stageRecord(Direction.Down, Direction.Down, -5, -2);
+        stageRecord(Direction.Down, Direction.Down, -3, 1.5);
+
+        LearningModelStatistics sketched = target.calculateWithSketch(COMPANY, Direction.Down, Direction.Down, 0d);
+
+        assertEquals(2, sketched.getCount());
+        assertEquals(1.5, sketched.getMax().getAsDouble(), 0);
+
+        stageRecord(Direction.Down, Direction.Down, -1, 4);
+        stageRecord(Direction.Down, Direction.Down, 2, 10);
+
+        LearningModelStatistics inMemory = target.calculateInMemory(COMPANY, Direction.Down, Direction.Down, 0d);
+        sketched = target.calculateWithSketch(COMPANY, Direction.Down, Direction.Down, 0d);
+
+        assertEquals(inMemory.getCount(), sketched.getCount());
+        assertEquals(inMemory.getAverage().getAsDouble(), sketched.getAverage().getAsDouble(), 1e-9);
+        assertEquals(inMemory.getMax().getAsDouble(), sketched.getMax().getAsDouble(), 0);
+    }
+
+    @Test
+    public void testCalculate_withThresholdInsideBand_sketchRoundsThresholdDown() throws Exception {
+        stageRecord(Direction.Down, Direction.Down, -1, 4);
+        stageRecord(Direction.Down, Direction.Down, -0.2, 10);
+
+        LearningModelStatistics sketched = target.calculateWithSketch(COMPANY, Direction.Down, Direction.Down, -0.1);
+
+        assertEquals(1, sketched.getCount());
+        assertEquals(4, sketched.getMax().getAsDouble(), 0);
+    }
+
+    @Test
+    public void testCalculate_withNoNewRecords_doesNotSaveSketch() throws Exception {
+        target.calculateWithSketch(COMPANY, Direction.Down, Direction.Down, 0d);
+
+        assertEquals(0, mongoOperations.count(new Query(), LearningModelSketch.class));
+
+        stageRecord(Direction.Down, Direction.Down, -5, -2);
+
+        target.calculateWithSketch(COMPANY, Direction.Down, Direction.Down, 0d);
+
+        assertEquals(1, mongoOperations.count(new Query(), LearningModelSketch.class));
+    }
+
+    private void stageRecord(Direction quoteDirection, Direction sentimentDirection, double sentimentDifference, double quoteChange) {
+        learningModelRepository.save(LearningModelRecordBuilder.aLearningModelRecord()
+                .withCompany(COMPANY)
+                .withPreviousQuoteDirection(quoteDirection)
+                .withPreviousSentimentDirection(sentimentDirection)
+                .withLastSentimentDifferenceFromAverage(sentimentDifference)
+                .withResultingQuoteChange(quoteChange)
+                .build());
+    }
+}
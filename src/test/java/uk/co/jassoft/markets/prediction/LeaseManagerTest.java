@@ -0,0 +1,84 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.utils.BaseRepositoryTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SpringConfiguration.class)
+@IntegrationTest
+public class LeaseManagerTest extends BaseRepositoryTest {
+
+    private static final String LEASE = "test-lease";
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    private LeaseManager first;
+
+    private LeaseManager second;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoOperations.dropCollection(Lease.class);
+
+        first = leaseManager("first", 120);
+        second = leaseManager("second", 120);
+    }
+
+    @Test
+    public void testAcquire_whenHeldByAnotherOwner_isRefused() throws Exception {
+        assertTrue(first.acquire(LEASE));
+        assertFalse(second.acquire(LEASE));
+        assertTrue(first.acquire(LEASE));
+
+        assertEquals(1, mongoOperations.count(new Query(), Lease.class));
+        assertEquals("first", mongoOperations.findById(LEASE, Lease.class).getOwner());
+    }
+
+    @Test
+    public void testAcquire_whenExpired_isTakenOver() throws Exception {
+        first = leaseManager("first", 0);
+
+        assertTrue(first.acquire(LEASE));
+
+        Thread.sleep(50);
+
+        assertTrue(second.acquire(LEASE));
+        assertFalse(first.heartbeat(LEASE));
+        assertEquals("second", mongoOperations.findById(LEASE, Lease.class).getOwner());
+    }
+
+    @Test
+    public void testRelease_byOwner_freesLeaseForOthers() throws Exception {
+        assertTrue(first.acquire(LEASE));
+
+        second.release(LEASE);
+        assertFalse(second.acquire(LEASE));
+
+        first.release(LEASE);
+        assertTrue(second.acquire(LEASE));
+    }
+
+    private LeaseManager leaseManager(final String owner, final long durationSeconds) {
+        LeaseManager leaseManager = new LeaseManager(owner);
+
+        ReflectionTestUtils.setField(leaseManager, "mongoOperations", mongoOperations);
+        ReflectionTestUtils.setField(leaseManager, "leaseDurationSeconds", durationSeconds);
+
+        return leaseManager;
+    }
+}
@@ -17,6 +17,7 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.Arrays;
@@ -46,6 +47,9 @@ public class PredictionGeneratorTest extends BaseRepositoryTest {
     @Autowired
     private StorySentimentRepository storySentimentRepository;
 
+    @Autowired
+    private MongoOperations mongoOperations;
+
     @Autowired
     private PredictionGenerator target;
 
@@ -204,6 +208,9 @@ public class PredictionGeneratorTest extends BaseRepositoryTest {
 
         target.generatePrediction(companyId);
 
+        // Forget the fingerprint so the second run reaches the existing prediction check rather than being skipped
+        mongoOperations.dropCollection(GenerationFingerprint.class);
+
         target.generatePrediction(companyId);
 
         assertEquals(5, predictionRepository.count());
@@ -229,6 +236,9 @@ public class PredictionGeneratorTest extends BaseRepositoryTest {
 
         target.generatePrediction(companyId);
 
+        // Forget the fingerprint so the second run reaches the existing prediction check rather than being skipped
+        mongoOperations.dropCollection(GenerationFingerprint.class);
+
         target.generatePrediction(companyId);
 
         assertEquals(2, predictionRepository.count());
@@ -236,6 +246,60 @@ public class PredictionGeneratorTest extends BaseRepositoryTest {
         assertEquals("-2.0", predictionRepository.findAll().get(1).getPredictedChange().toString());
     }
 
+    @Test
+    public void testOnMessage_withUnchangedInputs_skipsRegeneration() throws Exception {
+        String companyId = generateCompanyForPrediction();
+
+        stageValidQuotes(companyId);
+
+        learningModelRepository.save(LearningModelRecordBuilder.aLearningModelRecord()
+                .withCompany(companyId)
+                .withPreviousQuoteDirection(Direction.Down)
+                .withPreviousSentimentDirection(Direction.Down)
+                .withLastSentimentDifferenceFromAverage(-5)
+                .withResultingQuoteChange(-2)
+                .build());
+
+        target.generatePrediction(companyId);
+
+        target.generatePrediction(companyId);
+
+        GenerationFingerprint fingerprint = mongoOperations.findById(companyId, GenerationFingerprint.class);
+
+        assertEquals(1, predictionRepository.count());
+        assertEquals(1, fingerprint.getGenerated());
+        assertEquals(1, fingerprint.getSkipped());
+    }
+
+    @Test
+    public void testOnMessage_withChangedLearningModel_regeneratesPrediction() throws Exception {
+        String companyId = generateCompanyForPrediction();
+
+        stageValidQuotes(companyId);
+
+        learningModelRepository.save(LearningModelRecordBuilder.aLearningModelRecord()
+                .withCompany(companyId)
+                .withPreviousQuoteDirection(Direction.Down)
+                .withPreviousSentimentDirection(Direction.Down)
+                .withLastSentimentDifferenceFromAverage(-5)
+                .withResultingQuoteChange(-2)
+                .build());
+
+        target.generatePrediction(companyId);
+
+        learningModelRepository.save(LearningModelRecordBuilder.aLearningModelRecord()
+                .withCompany(companyId)
+                .withPreviousQuoteDirection(Direction.Down)
+                .withPreviousSentimentDirection(Direction.Down)
+                .withLastSentimentDifferenceFromAverage(-5)
+                .withResultingQuoteChange(-4)
+                .build());
+
+        target.generatePrediction(companyId);
+
+        assertEquals(2, predictionRepository.count());
+    }
+
     private void generateCorrectPrediction(String companyId) {
         Prediction prediction = PredictionBuilder.aPrediction()
                 .withCompany(companyId)
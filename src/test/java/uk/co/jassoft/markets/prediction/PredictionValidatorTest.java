@@ -12,12 +12,16 @@ import uk.co.jassoft.markets.repository.QuoteRepository;
 import uk.co.jassoft.utils.BaseRepositoryTest;
 import org.joda.time.DateTime;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -42,9 +46,18 @@ public class PredictionValidatorTest extends BaseRepositoryTest {
     @Autowired
     private CompanyRepository companyRepository;
 
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private QuoteStore quoteStore;
+
     @Autowired
     private PredictionValidator target;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private String companyId;
 
     @Before
@@ -53,6 +66,7 @@ public class PredictionValidatorTest extends BaseRepositoryTest {
         predictionRepository.deleteAll();
         quoteRepository.deleteAll();
         companyRepository.deleteAll();
+        mongoOperations.dropCollection(ValidationCheckpoint.class);
 
         String exchnageId = exchangeRepository.save(ExchangeBuilder.anExchange().build()).getId();
 
@@ -139,4 +153,118 @@ public class PredictionValidatorTest extends BaseRepositoryTest {
         assertEquals("4.0", predictionRepository.findAll().get(0).getActualEarningPerShare().toString());
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testValidatePredictions_withItemBudget_resumesFromCheckpoint() throws Exception {
+
+        // Stays unvalidated as there are no quotes for it, so only the checkpoint can move the next run past it
+        String unvalidatableId = predictionRepository.save(PredictionBuilder.aPrediction()
+                .withCompany(companyId)
+                .withPredictionDate(new DateTime(2016, 2, 1, 0, 0, 0).toDate())
+                .withValidityPeriod(86400000l)
+                .withDirection(Direction.Down)
+                .withLastBid(100)
+                .withLastAsk(102)
+                .build())
+                .getId();
+
+        String validatableId = predictionRepository.save(PredictionBuilder.aPrediction()
+                .withCompany(companyId)
+                .withPredictionDate(new DateTime(2016, 3, 1, 0, 0, 0).toDate())
+                .withValidityPeriod(86400000l)
+                .withDirection(Direction.Down)
+                .withLastBid(100)
+                .withLastAsk(102)
+                .build())
+                .getId();
+
+        quoteRepository.save(QuoteBuilder.aQuote()
+                .withCompany(companyId)
+                .withDate(new DateTime(2016, 3, 1, 0, 0, 0).toDate())
+                .withOpen(100)
+                .build());
+
+        quoteRepository.save(QuoteBuilder.aQuote()
+                .withCompany(companyId)
+                .withDate(new DateTime(2016, 3, 2, 0, 0, 0).toDate())
+                .withClose(98)
+                .build());
+
+        ReflectionTestUtils.setField(target, "maxItems", 1l);
+
+        try {
+            target.validatePredictions();
+
+            assertNull(predictionRepository.findOne(validatableId).getCorrect());
+            assertEquals(unvalidatableId, mongoOperations.findById("validation-0", ValidationCheckpoint.class).getLastPrediction());
+
+            target.validatePredictions();
+
+            assertNull(predictionRepository.findOne(unvalidatableId).getCorrect());
+            assertEquals(true, predictionRepository.findOne(validatableId).getCorrect());
+            assertNull(mongoOperations.findById("validation-0", ValidationCheckpoint.class).getLastPrediction());
+        }
+        finally {
+            ReflectionTestUtils.setField(target, "maxItems", 0l);
+        }
+    }
+
+    @Test
+    public void testValidatePredictions_withQuoteStoreAndBackfilledQuote_usesBackfilledQuote() throws Exception {
+
+        String intradayExchangeId = exchangeRepository.save(ExchangeBuilder.anExchange()
+                .withIntraday(true)
+                .build())
+                .getId();
+
+        String intradayCompanyId = companyRepository.save(CompanyBuilder.aCompany()
+                .withExchange(intradayExchangeId)
+                .build())
+                .getId();
+
+        quoteRepository.save(QuoteBuilder.aQuote()
+                .withCompany(intradayCompanyId)
+                .withDate(new DateTime(2016, 2, 29, 0, 0, 0).toDate())
+                .withOpen(200)
+                .build());
+
+        quoteRepository.save(QuoteBuilder.aQuote()
+                .withCompany(intradayCompanyId)
+                .withDate(new DateTime(2016, 3, 2, 0, 0, 0).toDate())
+                .withClose(98)
+                .build());
+
+        ReflectionTestUtils.setField(quoteStore, "directory", folder.getRoot().getAbsolutePath());
+        ReflectionTestUtils.setField(quoteStore, "refreshSeconds", 0l);
+
+        try {
+            assertEquals(2, quoteStore.getQuotes(intradayCompanyId).size());
+
+            // Backfilled behind the stored quotes, so the store would otherwise floor to the 29th
+            quoteRepository.save(QuoteBuilder.aQuote()
+                    .withCompany(intradayCompanyId)
+                    .withDate(new DateTime(2016, 3, 1, 0, 0, 0).toDate())
+                    .withOpen(100)
+                    .build());
+
+            predictionRepository.save(PredictionBuilder.aPrediction()
+                    .withCompany(intradayCompanyId)
+                    .withPredictionDate(new DateTime(2016, 3, 1, 12, 0, 0).toDate())
+                    .withValidityPeriod(86400000l)
+                    .withDirection(Direction.Down)
+                    .withLastBid(100)
+                    .withLastAsk(102)
+                    .build());
+
+            target.validatePredictions();
+
+            assertEquals(true, predictionRepository.findAll().get(0).getCorrect());
+            assertEquals("-2.0", predictionRepository.findAll().get(0).getActualChange().toString());
+        }
+        finally {
+            quoteStore.closeAll();
+            ReflectionTestUtils.setField(quoteStore, "directory", "");
+            ReflectionTestUtils.setField(quoteStore, "refreshSeconds", 300l);
+        }
+    }
+}
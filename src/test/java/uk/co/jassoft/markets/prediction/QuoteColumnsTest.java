@@ -0,0 +1,61 @@
+package uk.co.jassoft.markets.prediction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class QuoteColumnsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private QuoteColumns target;
+
+    @Before
+    public void setUp() throws Exception {
+        target = QuoteColumns.open(folder.getRoot().toPath());
+
+        target.append(100, 1, 2, 3, 4);
+        target.append(200, 5, 6, 7, 8);
+        target.append(300, 9, 10, 11, 12);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        target.close();
+    }
+
+    @Test
+    public void testLookups_withOrderedQuotes_findExactAndFloorRows() throws Exception {
+        assertEquals(3, target.size());
+        assertEquals(1, target.indexOf(200));
+        assertEquals(-1, target.indexOf(250));
+        assertEquals(1, target.floorBefore(300));
+        assertEquals(-1, target.floorBefore(100));
+        assertEquals(10, target.close(target.floorBefore(301)), 0);
+    }
+
+    @Test
+    public void testAppend_withSameOrEarlierDate_replacesLastRowOrRejects() throws Exception {
+        target.append(300, 13, 14, 15, 16);
+
+        assertFalse(target.append(150, 0, 0, 0, 0));
+        assertEquals(3, target.size());
+        assertEquals(14, target.close(2), 0);
+    }
+
+    @Test
+    public void testOpen_withExistingFiles_restoresRows() throws Exception {
+        target.close();
+        target = QuoteColumns.open(folder.getRoot().toPath());
+
+        assertEquals(3, target.size());
+        assertEquals(300, target.lastDate());
+        assertEquals(11, target.bid(2), 0);
+    }
+}
@@ -0,0 +1,112 @@
+package uk.co.jassoft.markets.prediction;
+
+import uk.co.jassoft.markets.datamodel.company.quote.QuoteBuilder;
+import uk.co.jassoft.markets.repository.QuoteRepository;
+import uk.co.jassoft.utils.BaseRepositoryTest;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = SpringConfiguration.class)
+@IntegrationTest
+public class QuoteStoreTest extends BaseRepositoryTest {
+
+    private static final String COMPANY = "company";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Autowired
+    private QuoteRepository quoteRepository;
+
+    @Autowired
+    private QuoteStore target;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        quoteRepository.deleteAll();
+
+        ReflectionTestUtils.setField(target, "directory", folder.getRoot().getAbsolutePath());
+        ReflectionTestUtils.setField(target, "refreshSeconds", 0l);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        target.closeAll();
+
+        ReflectionTestUtils.setField(target, "directory", "");
+        ReflectionTestUtils.setField(target, "refreshSeconds", 300l);
+    }
+
+    @Test
+    public void testGetQuotes_withNewQuotes_appendsThem() throws Exception {
+        stageQuote(new DateTime(2016, 3, 1, 0, 0, 0), 100);
+
+        assertEquals(1, target.getQuotes(COMPANY).size());
+
+        stageQuote(new DateTime(2016, 3, 2, 0, 0, 0), 98);
+
+        QuoteColumns quotes = target.getQuotes(COMPANY);
+
+        assertEquals(2, quotes.size());
+        assertEquals(98, quotes.close(1), 0);
+    }
+
+    @Test
+    public void testGetQuotes_withBackfilledQuote_rebuildsCompany() throws Exception {
+        stageQuote(new DateTime(2016, 3, 2, 0, 0, 0), 98);
+        stageQuote(new DateTime(2016, 3, 3, 0, 0, 0), 97);
+
+        assertEquals(2, target.getQuotes(COMPANY).size());
+
+        long backfilled = new DateTime(2016, 3, 1, 0, 0, 0).getMillis();
+        stageQuote(new DateTime(backfilled), 100);
+
+        QuoteColumns quotes = target.getQuotes(COMPANY);
+
+        assertEquals(3, quotes.size());
+        assertEquals(0, quotes.indexOf(backfilled));
+        assertEquals(100, quotes.close(0), 0);
+    }
+
+    @Test
+    public void testGetQuotes_withinRefreshInterval_doesNotRefresh() throws Exception {
+        ReflectionTestUtils.setField(target, "refreshSeconds", 300l);
+
+        stageQuote(new DateTime(2016, 3, 1, 0, 0, 0), 100);
+
+        assertEquals(1, target.getQuotes(COMPANY).size());
+
+        stageQuote(new DateTime(2016, 3, 2, 0, 0, 0), 98);
+
+        assertEquals(1, target.getQuotes(COMPANY).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRebuild_withNoDirectory_failsFast() throws Exception {
+        ReflectionTestUtils.setField(target, "directory", "");
+
+        target.rebuild(COMPANY);
+    }
+
+    private void stageQuote(final DateTime date, final double close) {
+        quoteRepository.save(QuoteBuilder.aQuote()
+                .withCompany(COMPANY)
+                .withDate(date.toDate())
+                .withClose(close)
+                .build());
+    }
+}